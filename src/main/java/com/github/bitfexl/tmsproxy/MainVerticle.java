@@ -1,43 +1,79 @@
 package com.github.bitfexl.tmsproxy;
 
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.github.bitfexl.tmsproxy.config.Config;
 import com.github.bitfexl.tmsproxy.config.ConfigParser;
 import com.github.bitfexl.tmsproxy.config.InvalidConfigurationException;
-import com.github.bitfexl.tmsproxy.config.RawConfig;
+import com.github.bitfexl.tmsproxy.config.ServerConfig;
 import com.github.bitfexl.tmsproxy.handlers.DefaultHandler;
+import com.github.bitfexl.tmsproxy.handlers.ReloadHandler;
+import com.github.bitfexl.tmsproxy.handlers.StatsHandler;
 import com.github.bitfexl.tmsproxy.handlers.TMSHandler;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.core.http.Http2Settings;
+import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.json.jackson.DatabindCodec;
+import io.vertx.core.net.PemKeyCertOptions;
 import io.vertx.core.spi.json.JsonCodec;
 import io.vertx.ext.web.Router;
-import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
-@RequiredArgsConstructor
 public class MainVerticle extends AbstractVerticle {
-    private final Config config;
+    private final String configFile;
+
+    /**
+     * The active configuration, replaced on reload.
+     */
+    private volatile Config config;
+
+    /**
+     * The router of the active configuration. Requests already dispatched to a previous router finish there,
+     * with the configuration of that router.
+     */
+    private volatile Router router;
+
+    private TMSHandler tmsHandler;
+
+    /**
+     * Clients shared by all configurations, so reloads keep the upstream and peer connections.
+     */
+    private HttpClient httpClient, peerClient;
+
+    private long watchTimerId = -1;
+
+    private Duration watchInterval = Duration.ZERO;
+
+    private long configLastModified;
+
+    public MainVerticle(String configFile, Config config) {
+        this.configFile = configFile;
+        this.config = config;
+    }
 
     @Override
     public void start(Promise<Void> startPromise) throws Exception {
-        final HttpServer httpServer = vertx.createHttpServer();
-        final Router router = Router.router(vertx);
-        registerRoutes(router);
-        httpServer.requestHandler(router);
-        httpServer.listen(config.getPort(), "127.0.0.1")
+        httpClient = TMSHandler.createHttpClient(vertx);
+        peerClient = TMSHandler.createPeerClient(vertx);
+
+        final HttpServer httpServer = vertx.createHttpServer(createHttpServerOptions());
+        router = createRouter(config);
+        httpServer.requestHandler(request -> router.handle(request));
+        httpServer.listen(config.getPort(), config.getServer().getHost())
                 .onComplete(event -> {
                     if (event.succeeded()) {
                         startPromise.complete();
@@ -46,25 +82,115 @@ public class MainVerticle extends AbstractVerticle {
                         startPromise.fail(event.cause());
                     }
                 });
+
+        configLastModified = vertx.fileSystem().propsBlocking(configFile).lastModifiedTime();
+        watchConfig(config.getReloadWatchInterval());
+    }
+
+    /**
+     * Reload the configuration file and swap it in for new requests. Unchanged tile sources, caches,
+     * rate limiters and all connections are kept. Port and server options can't be changed without a restart.
+     * @return A future completing after the new configuration is active, or failing if it is invalid.
+     */
+    public Future<Void> reloadConfig() {
+        return vertx.fileSystem().readFile(configFile).<Void>map(file -> {
+            final Config newConfig = new ConfigParser().parseConfig(new JsonObject(file), vertx, config);
+
+            if (newConfig.getPort() != config.getPort() || !newConfig.getServer().equals(config.getServer())) {
+                log.warn("Changes to 'port' and 'server' configuration only take effect after a restart.");
+            }
+
+            router = createRouter(newConfig);
+            config = newConfig;
+            watchConfig(newConfig.getReloadWatchInterval());
+
+            log.info("Configuration reloaded from '{}'.", configFile);
+            return null;
+        }).onFailure(t -> {
+            if (t instanceof InvalidConfigurationException) {
+                log.error("Error reloading config file '{}', keeping previous configuration: {}", configFile, t.getMessage());
+            } else {
+                log.error("Error reloading config file '{}', keeping previous configuration.", configFile, t);
+            }
+        });
+    }
+
+    /**
+     * Poll the modification time of the config file and reload it if it has changed.
+     * @param interval The poll interval, zero disables watching.
+     */
+    private void watchConfig(Duration interval) {
+        if (interval.equals(watchInterval)) {
+            return;
+        }
+        watchInterval = interval;
+
+        if (watchTimerId != -1) {
+            vertx.cancelTimer(watchTimerId);
+            watchTimerId = -1;
+        }
+        if (interval.isZero()) {
+            return;
+        }
+
+        watchTimerId = vertx.setPeriodic(interval.toMillis(), __ -> vertx.fileSystem().props(configFile).onSuccess(props -> {
+            if (props.lastModifiedTime() != configLastModified) {
+                configLastModified = props.lastModifiedTime();
+                reloadConfig();
+            }
+        }));
     }
 
-    private void registerRoutes(Router router) {
-        new TMSHandler(router, vertx, config);
+    private HttpServerOptions createHttpServerOptions() {
+        final ServerConfig server = config.getServer();
+
+        final HttpServerOptions options = new HttpServerOptions()
+                .setTcpNoDelay(server.isTcpNoDelay())
+                .setTcpFastOpen(server.isTcpFastOpen())
+                .setIdleTimeout((int) server.getIdleTimeout().toMillis())
+                .setIdleTimeoutUnit(TimeUnit.MILLISECONDS)
+                .setHttp2ClearTextEnabled(server.isH2c())
+                // allow a whole viewport of tiles on a single multiplexed connection
+                .setInitialSettings(new Http2Settings().setMaxConcurrentStreams(server.getMaxConcurrentStreams()));
+
+        if (server.isTls()) {
+            // alpn negotiates HTTP/2 with browsers, HTTP/1.1 remains as fallback
+            options.setSsl(true)
+                    .setUseAlpn(true)
+                    .setKeyCertOptions(new PemKeyCertOptions()
+                            .setCertPath(server.getTlsCertPath())
+                            .setKeyPath(server.getTlsKeyPath())
+                    );
+        }
+
+        return options;
+    }
+
+    private Router createRouter(Config config) {
+        final Router router = Router.router(vertx);
+        tmsHandler = new TMSHandler(router, config, httpClient, peerClient, tmsHandler);
+        new StatsHandler(router, config);
+        new ReloadHandler(router, config.getAdminToken(), this::reloadConfig);
         new DefaultHandler(router);
+        return router;
     }
 
     public static void main(String[] args) {
         final long startTime = System.currentTimeMillis();
 
-        final Vertx vertx = Vertx.vertx();
-
         String configFile = "tmsconfig.json";
         if (args.length > 0) {
             configFile = args[0];
         }
-        RawConfig config;
+        Vertx vertx;
+        Config config;
         try {
-            config = readConfig(configFile, vertx);
+            final ConfigParser configParser = new ConfigParser();
+            final JsonObject rawConfig = readConfig(configFile);
+            // the transport has to be chosen before the vertx instance is created
+            final ServerConfig serverConfig = configParser.parseServerConfig(rawConfig);
+            vertx = Vertx.vertx(new VertxOptions().setPreferNativeTransport(serverConfig.isNativeTransport()));
+            config = configParser.parseConfig(rawConfig, vertx);
         } catch (Exception ex) {
             if (ex instanceof InvalidConfigurationException) {
                 log.error("Error loading config file '{}': {}", configFile, ex.getMessage());
@@ -75,7 +201,15 @@ public class MainVerticle extends AbstractVerticle {
             return;
         }
 
-        vertx.deployVerticle(new MainVerticle(null))
+        if (config.getServer().isNativeTransport()) {
+            if (vertx.isNativeTransportEnabled()) {
+                log.info("Using native transport.");
+            } else {
+                log.info("Native transport not available: {}", vertx.unavailableNativeTransportCause().getMessage());
+            }
+        }
+
+        vertx.deployVerticle(new MainVerticle(configFile, config))
                 .onComplete(event -> {
                     long endTime = System.currentTimeMillis();
                     if (event.succeeded()) {
@@ -87,11 +221,10 @@ public class MainVerticle extends AbstractVerticle {
     }
 
     @SneakyThrows
-    public static RawConfig readConfig(String configFile, Vertx vertx) {
+    public static JsonObject readConfig(String configFile) {
         try (final InputStream in = new FileInputStream(configFile)) {
-            final ObjectMapper objectMapper = new ObjectMapper().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
             final String config = new String(in.readAllBytes(), StandardCharsets.UTF_8);
-            return objectMapper.readValue(config, RawConfig.class);
+            return new JsonObject(config);
         }
     }
 }
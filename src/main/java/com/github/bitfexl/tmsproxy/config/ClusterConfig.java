@@ -0,0 +1,44 @@
+package com.github.bitfexl.tmsproxy.config;
+
+import lombok.Value;
+
+import java.time.Duration;
+import java.util.List;
+
+@Value
+public class ClusterConfig {
+    /**
+     * The base url under which the other peers reach this node, must be contained in peers.
+     */
+    String self;
+
+    /**
+     * The base urls of all nodes of the cluster including this one.
+     */
+    List<String> peers;
+
+    /**
+     * Shared secret sent by peers on the internal route, requests without it are not treated as peer requests.
+     */
+    String secret;
+
+    /**
+     * Connect timeout for requests to peers.
+     */
+    Duration peerTimeout;
+
+    /**
+     * Time to wait for the response of a peer. Must be longer than the owner needs to fetch a tile
+     * from the upstream server, otherwise the tile is fetched twice.
+     */
+    Duration peerResponseTimeout;
+
+    /**
+     * How long a peer is skipped after it could not be connected to.
+     */
+    Duration peerDownTime;
+
+    public boolean isEnabled() {
+        return peers.size() > 1;
+    }
+}
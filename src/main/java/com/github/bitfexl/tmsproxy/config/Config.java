@@ -2,15 +2,37 @@ package com.github.bitfexl.tmsproxy.config;
 
 import com.github.bitfexl.tmsproxy.data.TileCache;
 import com.github.bitfexl.tmsproxy.data.TileSource;
+import io.vertx.core.json.JsonObject;
 import lombok.Value;
 
+import java.time.Duration;
 import java.util.Map;
 
 @Value
 public class Config {
     int port;
 
+    ServerConfig server;
+
     Map<String, TileSource> tileSources;
 
     Map<String, TileCache> tileCaches;
+
+    TimingConfig timing;
+
+    ClusterConfig cluster;
+
+    RateLimitConfig rateLimit;
+
+    Duration reloadWatchInterval;
+
+    /**
+     * Bearer token required by the admin routes, they are disabled if null.
+     */
+    String adminToken;
+
+    /**
+     * The json this configuration has been parsed from, used to find unchanged parts on reload.
+     */
+    JsonObject raw;
 }
@@ -1,5 +1,6 @@
 package com.github.bitfexl.tmsproxy.config;
 
+import com.github.bitfexl.tmsproxy.data.AdmissionTileCache;
 import com.github.bitfexl.tmsproxy.data.FilesystemTileCache;
 import com.github.bitfexl.tmsproxy.data.TileCacheResult;
 import com.github.bitfexl.tmsproxy.data.TileSource;
@@ -9,20 +10,72 @@ import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class ConfigParser {
     public static final int DEFAULT_PORT = 80;
+    public static final String DEFAULT_SERVER_HOST = "127.0.0.1";
+    public static final boolean DEFAULT_SERVER_NATIVE_TRANSPORT = true;
+    public static final boolean DEFAULT_SERVER_TCP_NO_DELAY = true;
+    public static final boolean DEFAULT_SERVER_TCP_FAST_OPEN = true;
+    public static final String DEFAULT_SERVER_IDLE_TIMEOUT = "60s";
+    public static final boolean DEFAULT_SERVER_H2C = true;
+    public static final long DEFAULT_SERVER_MAX_CONCURRENT_STREAMS = 256;
     public static final int DEFAULT_TILE_MIN_ZOOM = 0;
     public static final int DEFAULT_TILE_MAX_ZOOM = 20;
     public static final String DEFAULT_CACHE_MAX_AGE = "48h";
     public static final int DEFAULT_CACHE_MAX_ELEMENTS = 500_000;
+    public static final boolean DEFAULT_CACHE_ADMISSION_ENABLED = false;
+    public static final int DEFAULT_CACHE_ADMISSION_THRESHOLD = 1;
+    public static final boolean DEFAULT_TIMING_SERVER_TIMING_HEADER = false;
+    public static final String DEFAULT_TIMING_SLOW_REQUEST_THRESHOLD = "1000ms";
+    public static final double DEFAULT_TIMING_SLOW_REQUEST_SAMPLE_RATE = 1.0;
+    public static final String DEFAULT_CLUSTER_PEER_TIMEOUT = "500ms";
+    public static final String DEFAULT_CLUSTER_PEER_RESPONSE_TIMEOUT = "30s";
+    public static final String DEFAULT_CLUSTER_PEER_DOWN_TIME = "10s";
+    public static final boolean DEFAULT_RATE_LIMIT_ENABLED = false;
+    public static final double DEFAULT_RATE_LIMIT_REQUESTS_PER_SECOND = 100;
+    public static final int DEFAULT_RATE_LIMIT_REQUEST_BURST = 300;
+    public static final double DEFAULT_RATE_LIMIT_MISSES_PER_SECOND = 20;
+    public static final int DEFAULT_RATE_LIMIT_MISS_BURST = 100;
+    public static final int DEFAULT_RATE_LIMIT_MAX_CLIENTS = 100_000;
+    public static final String DEFAULT_RELOAD_WATCH_INTERVAL = "0";
 
     public Config parseConfig(JsonObject rawConfig, Vertx vertx) {
+        return parseConfig(rawConfig, vertx, null);
+    }
+
+    /**
+     * Parse a configuration, reusing the tile source and cache instances of a previous configuration
+     * if their configuration has not changed, so they keep their state (e.g. admission statistics).
+     * @param rawConfig The raw configuration to parse.
+     * @param vertx The vertx instance used by new caches.
+     * @param previous The currently active configuration or null.
+     * @return The new configuration.
+     */
+    public Config parseConfig(JsonObject rawConfig, Vertx vertx, Config previous) {
         final int port = rawConfig.getInteger("port", DEFAULT_PORT);
 
-        final Config config = new Config(port, new HashMap<>(), new HashMap<>());
+        final ServerConfig server = parseServerConfig(rawConfig);
+
+        final TimingConfig timing = parseTimingConfig(rawConfig);
+
+        final ClusterConfig cluster = parseClusterConfig(rawConfig);
+
+        final RateLimitConfig rateLimit = parseRateLimitConfig(rawConfig);
+
+        final Duration reloadWatchInterval = parseDuration(rawConfig.getString("reloadWatchInterval", DEFAULT_RELOAD_WATCH_INTERVAL));
+
+        final String adminToken = rawConfig.getString("adminToken");
+        if (adminToken != null && adminToken.isEmpty()) {
+            throw new InvalidConfigurationException("'adminToken' must not be empty.");
+        }
+
+        final Config config = new Config(port, server, new HashMap<>(), new HashMap<>(), timing, cluster, rateLimit, reloadWatchInterval, adminToken, rawConfig.copy());
 
         // ----- parse tiles -----
 
@@ -63,6 +116,11 @@ public class ConfigParser {
                 throw new InvalidConfigurationException("At least one tile source url must be provided with the 'tiles.sources' configuration array.");
             }
 
+            if (isUnchanged(previous, "tiles", name, tileJsonConfig) && previous.getTileSources().containsKey(name)) {
+                config.getTileSources().put(name, previous.getTileSources().get(name));
+                continue;
+            }
+
             config.getTileSources().put(name,
                     new TileSource(
                             name,
@@ -112,22 +170,239 @@ public class ConfigParser {
                 throw new InvalidConfigurationException("'directory' configuration parameter is missing from cache configuration.");
             }
 
+            final JsonObject admissionJsonConfig;
+            final boolean admissionEnabled;
+            final int admissionThreshold;
+            try {
+                admissionJsonConfig = cacheJsonConfig.getJsonObject("admission", new JsonObject());
+                admissionEnabled = admissionJsonConfig.getBoolean("enabled", DEFAULT_CACHE_ADMISSION_ENABLED);
+                admissionThreshold = admissionJsonConfig.getInteger("threshold", DEFAULT_CACHE_ADMISSION_THRESHOLD);
+            } catch (Exception ex) {
+                throw new InvalidConfigurationException("'caches.admission' must be an object with a boolean 'enabled' and an integer 'threshold'.", ex);
+            }
+            if (admissionThreshold < 0 || admissionThreshold > 14) {
+                throw new InvalidConfigurationException("'caches.admission.threshold' must be between 0 and 14.");
+            }
+
+            if (isUnchanged(previous, "caches", name, cacheJsonConfig) && previous.getTileCaches().containsKey(name)) {
+                config.getTileCaches().put(name, previous.getTileCaches().get(name));
+                continue;
+            }
+
             // todo: all parameters
             config.getTileCaches().put(
                     name,
-                    new FilesystemTileCache(vertx, directory)
+                    new AdmissionTileCache(
+                            new FilesystemTileCache(vertx, directory),
+                            admissionEnabled,
+                            admissionThreshold,
+                            maxElements
+                    )
             );
         }
 
         return config;
     }
 
+    /**
+     * Check if an entry of a configuration array is the same as in the previous configuration.
+     * @param previous The previous configuration, might be null.
+     * @param arrayName The name of the configuration array.
+     * @param name The name of the entry.
+     * @param jsonConfig The new configuration of the entry.
+     * @return true if the previous configuration contains an equal entry with the same name.
+     */
+    private boolean isUnchanged(Config previous, String arrayName, String name, JsonObject jsonConfig) {
+        if (previous == null) {
+            return false;
+        }
+
+        final JsonArray previousJsonConfigs = previous.getRaw().getJsonArray(arrayName);
+        if (previousJsonConfigs == null) {
+            return false;
+        }
+
+        for (int i = 0; i < previousJsonConfigs.size(); i++) {
+            final JsonObject previousJsonConfig = previousJsonConfigs.getJsonObject(i);
+            if (name.equals(previousJsonConfig.getString("name"))) {
+                return previousJsonConfig.equals(jsonConfig);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Parse the server section of the configuration. Can be used before the vertx instance is created.
+     * @param rawConfig The complete raw configuration.
+     * @return The server configuration.
+     */
+    public ServerConfig parseServerConfig(JsonObject rawConfig) {
+        final JsonObject serverJsonConfig;
+        try {
+            serverJsonConfig = rawConfig.getJsonObject("server", new JsonObject());
+        } catch (Exception ex) {
+            throw new InvalidConfigurationException("'server' must be a server configuration object.", ex);
+        }
+
+        final String host;
+        final boolean nativeTransport;
+        final boolean tcpNoDelay;
+        final boolean tcpFastOpen;
+        final boolean h2c;
+        final long maxConcurrentStreams;
+        final String tlsCertPath;
+        final String tlsKeyPath;
+        try {
+            host = serverJsonConfig.getString("host", DEFAULT_SERVER_HOST);
+            nativeTransport = serverJsonConfig.getBoolean("nativeTransport", DEFAULT_SERVER_NATIVE_TRANSPORT);
+            tcpNoDelay = serverJsonConfig.getBoolean("tcpNoDelay", DEFAULT_SERVER_TCP_NO_DELAY);
+            tcpFastOpen = serverJsonConfig.getBoolean("tcpFastOpen", DEFAULT_SERVER_TCP_FAST_OPEN);
+            h2c = serverJsonConfig.getBoolean("h2c", DEFAULT_SERVER_H2C);
+            maxConcurrentStreams = serverJsonConfig.getLong("maxConcurrentStreams", DEFAULT_SERVER_MAX_CONCURRENT_STREAMS);
+            tlsCertPath = serverJsonConfig.getString("tlsCertPath");
+            tlsKeyPath = serverJsonConfig.getString("tlsKeyPath");
+        } catch (Exception ex) {
+            throw new InvalidConfigurationException("Invalid type of a 'server' configuration parameter.", ex);
+        }
+
+        if (maxConcurrentStreams < 1) {
+            throw new InvalidConfigurationException("'server.maxConcurrentStreams' must be at least 1.");
+        }
+        if ((tlsCertPath == null) != (tlsKeyPath == null)) {
+            throw new InvalidConfigurationException("'server.tlsCertPath' and 'server.tlsKeyPath' must be set together.");
+        }
+
+        final Duration idleTimeout = parseDuration(serverJsonConfig.getString("idleTimeout", DEFAULT_SERVER_IDLE_TIMEOUT));
+
+        return new ServerConfig(host, nativeTransport, tcpNoDelay, tcpFastOpen, idleTimeout, h2c, maxConcurrentStreams, tlsCertPath, tlsKeyPath);
+    }
+
+    private TimingConfig parseTimingConfig(JsonObject rawConfig) {
+        final JsonObject timingJsonConfig;
+        try {
+            timingJsonConfig = rawConfig.getJsonObject("timing", new JsonObject());
+        } catch (Exception ex) {
+            throw new InvalidConfigurationException("'timing' must be a timing configuration object.", ex);
+        }
+
+        final boolean serverTimingHeader;
+        final double sampleRate;
+        try {
+            serverTimingHeader = timingJsonConfig.getBoolean("serverTimingHeader", DEFAULT_TIMING_SERVER_TIMING_HEADER);
+            sampleRate = timingJsonConfig.getDouble("slowRequestSampleRate", DEFAULT_TIMING_SLOW_REQUEST_SAMPLE_RATE);
+        } catch (Exception ex) {
+            throw new InvalidConfigurationException("'timing.serverTimingHeader' must be a boolean and 'timing.slowRequestSampleRate' a number.", ex);
+        }
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new InvalidConfigurationException("'timing.slowRequestSampleRate' must be between 0 and 1.");
+        }
+
+        final Duration slowRequestThreshold = parseDuration(timingJsonConfig.getString("slowRequestThreshold", DEFAULT_TIMING_SLOW_REQUEST_THRESHOLD));
+
+        return new TimingConfig(serverTimingHeader, slowRequestThreshold, sampleRate);
+    }
+
+    private ClusterConfig parseClusterConfig(JsonObject rawConfig) {
+        final JsonObject clusterJsonConfig;
+        try {
+            clusterJsonConfig = rawConfig.getJsonObject("cluster", new JsonObject());
+        } catch (Exception ex) {
+            throw new InvalidConfigurationException("'cluster' must be a cluster configuration object.", ex);
+        }
+
+        final List<String> peers = new ArrayList<>();
+        try {
+            final JsonArray rawPeers = clusterJsonConfig.getJsonArray("peers");
+            if (rawPeers != null) {
+                for (Object peer : rawPeers) {
+                    // normalize without trailing slash as the path is appended
+                    peers.add(((String) peer).replaceAll("/+$", ""));
+                }
+            }
+        } catch (RuntimeException ex) {
+            throw new InvalidConfigurationException("'cluster.peers' must be an array of peer base urls.", ex);
+        }
+
+        String self = clusterJsonConfig.getString("self");
+        if (self != null) {
+            self = self.replaceAll("/+$", "");
+        }
+        if (!peers.isEmpty() && (self == null || !peers.contains(self))) {
+            throw new InvalidConfigurationException("'cluster.self' must be set to the url of this node and be contained in 'cluster.peers'.");
+        }
+
+        final String secret = clusterJsonConfig.getString("secret");
+        if (peers.size() > 1 && (secret == null || secret.isEmpty())) {
+            throw new InvalidConfigurationException("'cluster.secret' must be set to a secret shared by all peers.");
+        }
+
+        final Duration peerTimeout = parseDuration(clusterJsonConfig.getString("peerTimeout", DEFAULT_CLUSTER_PEER_TIMEOUT));
+        final Duration peerResponseTimeout = parseDuration(clusterJsonConfig.getString("peerResponseTimeout", DEFAULT_CLUSTER_PEER_RESPONSE_TIMEOUT));
+        final Duration peerDownTime = parseDuration(clusterJsonConfig.getString("peerDownTime", DEFAULT_CLUSTER_PEER_DOWN_TIME));
+
+        return new ClusterConfig(self, List.copyOf(peers), secret, peerTimeout, peerResponseTimeout, peerDownTime);
+    }
+
+    private RateLimitConfig parseRateLimitConfig(JsonObject rawConfig) {
+        final JsonObject rateLimitJsonConfig;
+        try {
+            rateLimitJsonConfig = rawConfig.getJsonObject("rateLimit", new JsonObject());
+        } catch (Exception ex) {
+            throw new InvalidConfigurationException("'rateLimit' must be a rate limit configuration object.", ex);
+        }
+
+        final RateLimitConfig rateLimit;
+        try {
+            rateLimit = new RateLimitConfig(
+                    rateLimitJsonConfig.getBoolean("enabled", DEFAULT_RATE_LIMIT_ENABLED),
+                    rateLimitJsonConfig.getString("clientKeyHeader"),
+                    parseStringSet(rateLimitJsonConfig.getJsonArray("apiKeys")),
+                    rateLimitJsonConfig.getDouble("requestsPerSecond", DEFAULT_RATE_LIMIT_REQUESTS_PER_SECOND),
+                    rateLimitJsonConfig.getInteger("requestBurst", DEFAULT_RATE_LIMIT_REQUEST_BURST),
+                    rateLimitJsonConfig.getDouble("missesPerSecond", DEFAULT_RATE_LIMIT_MISSES_PER_SECOND),
+                    rateLimitJsonConfig.getInteger("missBurst", DEFAULT_RATE_LIMIT_MISS_BURST),
+                    rateLimitJsonConfig.getInteger("maxClients", DEFAULT_RATE_LIMIT_MAX_CLIENTS)
+            );
+        } catch (Exception ex) {
+            throw new InvalidConfigurationException("Invalid type of a 'rateLimit' configuration parameter.", ex);
+        }
+
+        if (rateLimit.getRequestsPerSecond() <= 0 || rateLimit.getMissesPerSecond() <= 0) {
+            throw new InvalidConfigurationException("'rateLimit.requestsPerSecond' and 'rateLimit.missesPerSecond' must be positive.");
+        }
+        if (rateLimit.getRequestBurst() < 1 || rateLimit.getMissBurst() < 1 || rateLimit.getMaxClients() < 1) {
+            throw new InvalidConfigurationException("'rateLimit.requestBurst', 'rateLimit.missBurst' and 'rateLimit.maxClients' must be at least 1.");
+        }
+
+        if (rateLimit.getClientKeyHeader() != null && rateLimit.getApiKeys().isEmpty()) {
+            throw new InvalidConfigurationException("'rateLimit.apiKeys' must list the keys accepted in 'rateLimit.clientKeyHeader'.");
+        }
+
+        return rateLimit;
+    }
+
+    private Set<String> parseStringSet(JsonArray array) {
+        if (array == null) {
+            return Set.of();
+        }
+        final Set<String> set = new HashSet<>();
+        for (Object value : array) {
+            set.add((String) value);
+        }
+        return Set.copyOf(set);
+    }
+
     /**
      * Parse a duration. Might throw and error if the duration is set incorrectly.
-     * Supports seconds ('s'), minutes ('m'), hours ('h') and days ('d'), defaults to hours.
-     * @return The max age as a duration.
+     * Supports milliseconds ('ms'), seconds ('s'), minutes ('m'), hours ('h') and days ('d'), defaults to hours.
+     * @return The parsed duration.
      */
     public Duration parseDuration(String duration) {
+        if (duration.endsWith("ms")) {
+            return Duration.ofMillis(Integer.parseInt(duration.substring(0, duration.length() - 2).trim()));
+        }
+
         char c = duration.charAt(duration.length() - 1);
         if (Character.isDigit(c)) {
             return Duration.ofHours(Integer.parseInt(duration));
@@ -0,0 +1,40 @@
+package com.github.bitfexl.tmsproxy.config;
+
+import lombok.Value;
+
+import java.util.Set;
+
+@Value
+public class RateLimitConfig {
+    boolean enabled;
+
+    /**
+     * Header containing an api key identifying a client. The remote address is used if the header
+     * is not set, not present or the key is not one of the api keys.
+     */
+    String clientKeyHeader;
+
+    /**
+     * The api keys accepted in the client key header.
+     */
+    Set<String> apiKeys;
+
+    /**
+     * Sustained requests per second per client and tile source.
+     */
+    double requestsPerSecond;
+
+    int requestBurst;
+
+    /**
+     * Sustained cache misses (upstream or peer requests) per second per client and tile source.
+     */
+    double missesPerSecond;
+
+    int missBurst;
+
+    /**
+     * The number of client and tile source combinations tracked at once, further ones share a single budget.
+     */
+    int maxClients;
+}
@@ -1,5 +0,0 @@
-package com.github.bitfexl.tmsproxy.config;
-
-public class RawConfig {
-    public int port;
-}
@@ -0,0 +1,56 @@
+package com.github.bitfexl.tmsproxy.config;
+
+import lombok.Value;
+
+import java.time.Duration;
+
+@Value
+public class ServerConfig {
+    /**
+     * The address to listen on.
+     */
+    String host;
+
+    /**
+     * Prefer the native epoll transport, included by the build on linux x86_64 and aarch64.
+     * Falls back to NIO on other platforms.
+     */
+    boolean nativeTransport;
+
+    boolean tcpNoDelay;
+
+    /**
+     * TCP fast open, only has an effect with the native transport.
+     */
+    boolean tcpFastOpen;
+
+    /**
+     * Close client connections without any traffic after this duration, zero disables the timeout.
+     */
+    Duration idleTimeout;
+
+    /**
+     * Accept cleartext HTTP/2 (h2c) with prior knowledge or upgrade.
+     */
+    boolean h2c;
+
+    /**
+     * The number of concurrent HTTP/2 streams allowed per connection.
+     * Should be high enough for one connection to carry all tiles of a viewport.
+     */
+    long maxConcurrentStreams;
+
+    /**
+     * Path to the PEM certificate (chain), TLS with ALPN (HTTP/2 and HTTP/1.1) is enabled if set.
+     */
+    String tlsCertPath;
+
+    /**
+     * Path to the PEM private key of the certificate.
+     */
+    String tlsKeyPath;
+
+    public boolean isTls() {
+        return tlsCertPath != null;
+    }
+}
@@ -0,0 +1,23 @@
+package com.github.bitfexl.tmsproxy.config;
+
+import lombok.Value;
+
+import java.time.Duration;
+
+@Value
+public class TimingConfig {
+    /**
+     * Add a Server-Timing header with the phase timings to tile responses.
+     */
+    boolean serverTimingHeader;
+
+    /**
+     * Requests taking longer than this are candidates for the slow request log.
+     */
+    Duration slowRequestThreshold;
+
+    /**
+     * Fraction (0 to 1) of slow requests which are actually logged.
+     */
+    double slowRequestSampleRate;
+}
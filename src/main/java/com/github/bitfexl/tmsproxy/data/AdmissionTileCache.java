@@ -0,0 +1,76 @@
+package com.github.bitfexl.tmsproxy.data;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A tile cache wrapper which only stores tiles that are requested frequently (TinyLFU admission).
+ * Every lookup is recorded in a {@link FrequencySketch}, a tile is only passed on to the wrapped cache
+ * once it has been requested more often than the threshold. This keeps one-hit tiles (crawlers, single pans)
+ * from polluting the cache.
+ * Hit and admission counters are kept regardless of whether admission is enabled, so both modes can be compared.
+ */
+public class AdmissionTileCache implements TileCache {
+    public record Stats(long hits, long misses, long admitted, long rejected) {
+        public double hitRatio() {
+            final long requests = hits + misses;
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+    }
+
+    private final TileCache tileCache;
+
+    private final boolean enabled;
+
+    private final int threshold;
+
+    private final FrequencySketch sketch;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Create a new admission filter.
+     * @param tileCache The cache to store admitted tiles in.
+     * @param enabled If false, all tiles are admitted but the statistics are still recorded.
+     * @param threshold A tile is admitted once its estimated frequency is higher than this value.
+     * @param maxElements The expected maximum number of tiles in the cache, used to size the sketch.
+     */
+    public AdmissionTileCache(TileCache tileCache, boolean enabled, int threshold, int maxElements) {
+        this.tileCache = tileCache;
+        this.enabled = enabled;
+        this.threshold = threshold;
+        this.sketch = new FrequencySketch(maxElements);
+    }
+
+    @Override
+    public Future<Void> store(String tileSetName, int z, int x, int y, Buffer file, String extension) {
+        if (!enabled || sketch.frequency(TileKeys.hash(tileSetName, z, x, y)) > threshold) {
+            admitted.increment();
+            return tileCache.store(tileSetName, z, x, y, file, extension);
+        }
+        rejected.increment();
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<TileCacheResult> retrieve(String tileSetName, int z, int x, int y) {
+        sketch.increment(TileKeys.hash(tileSetName, z, x, y));
+
+        return tileCache.retrieve(tileSetName, z, x, y).onComplete(event -> {
+            if (event.succeeded() && !event.result().isEmpty()) {
+                hits.increment();
+            } else {
+                misses.increment();
+            }
+        });
+    }
+
+    public Stats getStats() {
+        return new Stats(hits.sum(), misses.sum(), admitted.sum(), rejected.sum());
+    }
+}
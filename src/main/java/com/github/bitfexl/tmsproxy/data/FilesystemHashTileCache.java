@@ -19,7 +19,7 @@ public class FilesystemHashTileCache implements TileCache {
     }
 
     @Override
-    public void store(String tileSetName, int z, int x, int y, Buffer file, String extension) {
+    public Future<Void> store(String tileSetName, int z, int x, int y, Buffer file, String extension) {
         throw new UnsupportedOperationException();
     }
 
@@ -23,9 +23,9 @@ public class FilesystemTileCache implements TileCache {
     }
 
     @Override
-    public void store(String tileSetName, int z, int x, int y, Buffer file, String extension) {
+    public Future<Void> store(String tileSetName, int z, int x, int y, Buffer file, String extension) {
         final String path = getPath(directory, tileSetName, z, x, y);
-        fs.mkdirs(path).onSuccess(__ -> fs.writeFile(getPath(path, "tile." + extension), file));
+        return fs.mkdirs(path).compose(__ -> fs.writeFile(getPath(path, "tile." + extension), file));
     }
 
     @Override
@@ -0,0 +1,119 @@
+package com.github.bitfexl.tmsproxy.data;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch with 4-bit counters and periodic aging, as used by TinyLFU.
+ * Each key is counted in four counters of a shared table, the estimated frequency is the minimum of them.
+ * After a sample of increments all counters are halved, so the frequencies reflect recent popularity.
+ * Lock free, counters are updated with compare and set so lookups from different event loops never block.
+ * Concurrent increments during aging may be halved or not, which is fine for an estimate.
+ */
+public class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_COUNT = 15;
+
+    private final AtomicLongArray table;
+
+    private final int tableMask;
+
+    private final int sampleSize;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Create a new sketch.
+     * @param expectedElements The number of distinct elements the sketch should be able to tell apart,
+     *                         usually the maximum size of the cache.
+     */
+    public FrequencySketch(int expectedElements) {
+        final int capacity = Math.max(16, Math.min(expectedElements, 1 << 24));
+        table = new AtomicLongArray(Integer.highestOneBit(capacity - 1) << 1);
+        tableMask = table.length() - 1;
+        sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Estimate how often an element has been seen recently.
+     * @param hash The hash of the element.
+     * @return The estimated frequency, between 0 and 15.
+     */
+    public int frequency(long hash) {
+        final long spread = TileKeys.spread(hash);
+        final int start = (int) (spread & 3) << 2;
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(spread, i);
+            final int count = (int) ((table.get(index) >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Record an occurrence of an element. Ages all counters once the sample size is reached.
+     * @param hash The hash of the element.
+     */
+    public void increment(long hash) {
+        final long spread = TileKeys.spread(hash);
+        final int start = (int) (spread & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(spread, i), start + i);
+        }
+
+        // only the thread reaching the sample size exactly ages the counters
+        if (added && size.incrementAndGet() == sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        final int offset = counter << 2;
+        final long mask = 0xfL << offset;
+        while (true) {
+            final long value = table.get(index);
+            if ((value & mask) == mask) {
+                return false;
+            }
+            if (table.compareAndSet(index, value, value + (1L << offset))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Halve all counters. The size is halved as well, corrected by the increments lost to rounding down
+     * odd counters (each increment touches four counters).
+     */
+    void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length(); i++) {
+            final long value = table.getAndUpdate(i, v -> (v >>> 1) & RESET_MASK);
+            odd += Long.bitCount(value & ONE_MASK);
+        }
+        size.set((size.get() - (odd >>> 2)) >>> 1);
+    }
+
+    /**
+     * The number of increments since the last aging, halved by each aging.
+     */
+    int size() {
+        return size.get();
+    }
+
+    int sampleSize() {
+        return sampleSize;
+    }
+
+    private int indexOf(long spread, int i) {
+        long hash = (spread + SEEDS[i]) * SEEDS[i];
+        hash += hash >>> 32;
+        return (int) hash & tableMask;
+    }
+}
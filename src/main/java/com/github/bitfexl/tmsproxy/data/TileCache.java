@@ -12,8 +12,9 @@ public interface TileCache {
      * @param y The y parameter of the file.
      * @param file The file contents to store.
      * @param extension The file extension e.g. jpeg, png, ... (subtype of image/... mediatype).
+     * @return A future completing after the file has been stored or has been rejected.
      */
-    void store(String tileSetName, int z, int x, int y, Buffer file, String extension);
+    Future<Void> store(String tileSetName, int z, int x, int y, Buffer file, String extension);
 
     /**
      * Retrieve a previously stored file.
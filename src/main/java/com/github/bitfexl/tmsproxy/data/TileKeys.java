@@ -0,0 +1,33 @@
+package com.github.bitfexl.tmsproxy.data;
+
+public final class TileKeys {
+    private TileKeys() {}
+
+    /**
+     * Get a 64 bit hash identifying a tile.
+     * @param tileSetName The tile set name of the tile.
+     * @param z The z parameter of the tile.
+     * @param x The x parameter of the tile.
+     * @param y The y parameter of the tile.
+     * @return The hash, not uniformly distributed, spread it before using it as an index.
+     */
+    public static long hash(String tileSetName, int z, int x, int y) {
+        // x and y are unique in the lower and upper half, tile set and zoom are mixed over all bits
+        final long xy = ((long) x << 32) | (y & 0xffffffffL);
+        return xy ^ ((tileSetName.hashCode() * 31L + z) * 0x9e3779b97f4a7c15L);
+    }
+
+    /**
+     * Spread a hash over all bits (murmur3 finalizer).
+     * @param hash The hash to spread.
+     * @return The spread hash.
+     */
+    public static long spread(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,35 @@
+package com.github.bitfexl.tmsproxy.handlers;
+
+import io.vertx.ext.web.RoutingContext;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+final class AdminAuthentication {
+    private AdminAuthentication() {}
+
+    /**
+     * Check the bearer token of a request to an admin route.
+     * Passes the request on to the next route if no admin token is configured (admin routes disabled)
+     * and responds with 401 if the token is missing or wrong.
+     * @param ctx The request.
+     * @param adminToken The configured admin token or null.
+     * @return true if the request may be handled, false if it has already been dealt with.
+     */
+    static boolean authorize(RoutingContext ctx, String adminToken) {
+        if (adminToken == null) {
+            ctx.next();
+            return false;
+        }
+
+        final String authorization = ctx.request().getHeader("Authorization");
+        if (authorization == null || !MessageDigest.isEqual(
+                authorization.getBytes(StandardCharsets.UTF_8),
+                ("Bearer " + adminToken).getBytes(StandardCharsets.UTF_8))) {
+            ctx.response().setStatusCode(401).end();
+            return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,45 @@
+package com.github.bitfexl.tmsproxy.handlers;
+
+import com.github.bitfexl.tmsproxy.config.InvalidConfigurationException;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.function.Supplier;
+
+/**
+ * Reloads the configuration file on request. Only enabled if an admin token is configured,
+ * which has to be sent as bearer token.
+ */
+public class ReloadHandler implements Handler<RoutingContext> {
+    private final String adminToken;
+
+    private final Supplier<Future<Void>> reload;
+
+    public ReloadHandler(Router router, String adminToken, Supplier<Future<Void>> reload) {
+        router.route(HttpMethod.POST, "/admin/reload").handler(this);
+
+        this.adminToken = adminToken;
+        this.reload = reload;
+    }
+
+    @Override
+    public void handle(RoutingContext ctx) {
+        if (!AdminAuthentication.authorize(ctx, adminToken)) {
+            return;
+        }
+
+        // the reason is logged when reloading, don't expose configuration details
+        reload.get().onComplete(event -> {
+            if (event.succeeded()) {
+                ctx.response().end("Configuration reloaded.");
+            } else if (event.cause() instanceof InvalidConfigurationException) {
+                ctx.response().setStatusCode(400).end("Invalid configuration.");
+            } else {
+                ctx.response().setStatusCode(500).end("Error reloading configuration.");
+            }
+        });
+    }
+}
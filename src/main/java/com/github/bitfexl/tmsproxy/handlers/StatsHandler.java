@@ -0,0 +1,52 @@
+package com.github.bitfexl.tmsproxy.handlers;
+
+import com.github.bitfexl.tmsproxy.config.Config;
+import com.github.bitfexl.tmsproxy.data.AdmissionTileCache;
+import com.github.bitfexl.tmsproxy.data.TileCache;
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.Map;
+
+/**
+ * Reports the hit ratio and admission counters of all tile caches as json.
+ * Like the other admin routes it requires the admin token and is disabled without one.
+ */
+public class StatsHandler implements Handler<RoutingContext> {
+    private final Config config;
+
+    public StatsHandler(Router router, Config config) {
+        router.route(HttpMethod.GET, "/admin/stats").handler(this);
+
+        this.config = config;
+    }
+
+    @Override
+    public void handle(RoutingContext ctx) {
+        if (!AdminAuthentication.authorize(ctx, config.getAdminToken())) {
+            return;
+        }
+
+        final JsonObject caches = new JsonObject();
+
+        for (Map.Entry<String, TileCache> entry : config.getTileCaches().entrySet()) {
+            if (entry.getValue() instanceof AdmissionTileCache admissionTileCache) {
+                final AdmissionTileCache.Stats stats = admissionTileCache.getStats();
+                caches.put(entry.getKey(), new JsonObject()
+                        .put("hits", stats.hits())
+                        .put("misses", stats.misses())
+                        .put("hitRatio", stats.hitRatio())
+                        .put("admitted", stats.admitted())
+                        .put("rejected", stats.rejected())
+                );
+            }
+        }
+
+        ctx.response()
+                .putHeader("Content-Type", "application/json")
+                .end(new JsonObject().put("caches", caches).encode());
+    }
+}
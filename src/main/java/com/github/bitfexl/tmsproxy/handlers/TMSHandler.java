@@ -1,58 +1,166 @@
 package com.github.bitfexl.tmsproxy.handlers;
 
+import com.github.bitfexl.tmsproxy.config.ClusterConfig;
 import com.github.bitfexl.tmsproxy.config.Config;
+import com.github.bitfexl.tmsproxy.config.RateLimitConfig;
+import com.github.bitfexl.tmsproxy.config.TimingConfig;
 import com.github.bitfexl.tmsproxy.data.TileCache;
+import com.github.bitfexl.tmsproxy.data.TileKeys;
 import com.github.bitfexl.tmsproxy.data.TileSource;
+import com.github.bitfexl.tmsproxy.util.ClientKeys;
+import com.github.bitfexl.tmsproxy.util.RendezvousHash;
+import com.github.bitfexl.tmsproxy.util.RequestTimings;
+import com.github.bitfexl.tmsproxy.util.RequestTimings.Phase;
+import com.github.bitfexl.tmsproxy.util.TokenBucketRateLimiter;
 import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.*;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import lombok.extern.slf4j.Slf4j;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.regex.Pattern;
 
 @Slf4j
 public class TMSHandler implements Handler<RoutingContext> {
     private static final String DOT_PATTERN = Pattern.quote(".");
 
+    /**
+     * Prefix of the internal route used by cluster peers, requests on it are never forwarded to another peer.
+     */
+    private static final String PEER_PATH_PREFIX = "/peer";
+
+    private static final String PEER_SECRET_HEADER = "X-TMS-Peer-Secret";
+
+    /**
+     * Set by the owner peer on a 404 response if the upstream server does not have the tile.
+     * Any other non 200 response of a peer makes the asking node fall back to the upstream server.
+     */
+    private static final String UPSTREAM_NOT_FOUND_HEADER = "X-TMS-Upstream-Not-Found";
+
     private final HttpClient httpClient;
 
     private final Config config;
 
-    public TMSHandler(Router router, Vertx vertx, Config config) {
+    /**
+     * Client for requests to cluster peers or null if cluster mode is disabled.
+     */
+    private final HttpClient peerClient;
+
+    private final RendezvousHash peerHash;
+
+    /**
+     * Peers which failed recently, mapped to the System.nanoTime() until which they are skipped.
+     */
+    private final Map<String, Long> peersDownUntil;
+
+    /**
+     * Rate limiters for all requests and for cache misses per client and tile source, null if rate limiting is disabled.
+     */
+    private final TokenBucketRateLimiter requestRateLimiter, missRateLimiter;
+
+    /**
+     * Create a new tms handler.
+     * @param router The router to register the routes on.
+     * @param config The configuration used for all requests handled by this instance.
+     * @param httpClient The client for upstream requests, see {@link #createHttpClient(Vertx)}.
+     * @param peerClient The client for requests to cluster peers, see {@link #createPeerClient(Vertx)}.
+     * @param previous The handler of the previous configuration or null. Its rate limiter and peer state
+     *                 is taken over if the respective configuration has not changed.
+     */
+    public TMSHandler(Router router, Config config, HttpClient httpClient, HttpClient peerClient, TMSHandler previous) {
         router.route(HttpMethod.GET, "/tms/:name/:z/:x/:y").handler(this);
+        router.route(HttpMethod.GET, PEER_PATH_PREFIX + "/tms/:name/:z/:x/:y").handler(this);
+
+        this.httpClient = httpClient;
 
-        httpClient = vertx.createHttpClient(
+        this.config = config;
+
+        final ClusterConfig cluster = config.getCluster();
+        if (cluster.isEnabled()) {
+            this.peerClient = peerClient;
+            peerHash = new RendezvousHash(cluster.getPeers());
+        } else {
+            this.peerClient = null;
+            peerHash = null;
+        }
+
+        if (previous != null && previous.config.getCluster().equals(cluster)) {
+            peersDownUntil = previous.peersDownUntil;
+        } else {
+            peersDownUntil = new ConcurrentHashMap<>();
+        }
+
+        final RateLimitConfig rateLimit = config.getRateLimit();
+        if (previous != null && previous.config.getRateLimit().equals(rateLimit)) {
+            requestRateLimiter = previous.requestRateLimiter;
+            missRateLimiter = previous.missRateLimiter;
+        } else if (rateLimit.isEnabled()) {
+            requestRateLimiter = new TokenBucketRateLimiter(rateLimit.getRequestsPerSecond(), rateLimit.getRequestBurst(), rateLimit.getMaxClients());
+            missRateLimiter = new TokenBucketRateLimiter(rateLimit.getMissesPerSecond(), rateLimit.getMissBurst(), rateLimit.getMaxClients());
+        } else {
+            requestRateLimiter = null;
+            missRateLimiter = null;
+        }
+    }
+
+    /**
+     * Create the client for upstream requests. It is independent of the configuration,
+     * so it and its connection pool can be shared by all tms handlers.
+     */
+    public static HttpClient createHttpClient(Vertx vertx) {
+        return vertx.createHttpClient(
                 new HttpClientOptions()
                         .setProtocolVersion(HttpVersion.HTTP_2)
                         .setUseAlpn(true)
                         .setMaxPoolSize(40)
                         .setPoolEventLoopSize(4)
                 );
+    }
 
-        this.config = config;
+    /**
+     * Create the client for requests to cluster peers. It is independent of the configuration,
+     * so it and its connection pool can be shared by all tms handlers.
+     */
+    public static HttpClient createPeerClient(Vertx vertx) {
+        // peers are other instances of this proxy, talk h2c with prior knowledge to multiplex on one connection
+        return vertx.createHttpClient(
+                new HttpClientOptions()
+                        .setProtocolVersion(HttpVersion.HTTP_2)
+                        .setHttp2ClearTextUpgrade(false)
+        );
     }
 
     @Override
     public void handle(RoutingContext ctx) {
-        final long requestReceivedTime = System.currentTimeMillis();
+        final RequestTimings timings = new RequestTimings();
 
         try {
             final String name = ctx.pathParam("name");
             final int z = Integer.parseInt(ctx.pathParam("z"));
             final int x = Integer.parseInt(ctx.pathParam("x"));
             final int y = Integer.parseInt(ctx.pathParam("y").split(DOT_PATTERN)[0]);
-            handleTmsRequest(ctx, name, z, x, y).onComplete(event -> {
+            final boolean peerRequest = ctx.request().path().startsWith(PEER_PATH_PREFIX + "/");
+            if (peerRequest && !isAuthenticatedPeer(ctx)) {
+                ctx.response().setStatusCode(403).end();
+                return;
+            }
+            handleTmsRequest(ctx, name, z, x, y, peerRequest, timings).onComplete(event -> {
+                final long totalNanos = timings.getTotalNanos();
                 if (event.succeeded()) {
-                    final long requestCompleteTime = System.currentTimeMillis();
-                    final long time = requestCompleteTime - requestReceivedTime;
-                    log.info("Request finished after {}ms.", time);
+                    log.info("Request finished after {}ms.", totalNanos / 1_000_000);
                 } else {
                     log.info("Request failed: {}", event.cause().getMessage());
                 }
+                logSlowRequest(ctx, name, z, x, y, timings, totalNanos);
             });
 
 
@@ -61,7 +169,7 @@ public class TMSHandler implements Handler<RoutingContext> {
         }
     }
 
-    private Future<Void> handleTmsRequest(RoutingContext ctx, String name, int z, int x, int y) {
+    private Future<Void> handleTmsRequest(RoutingContext ctx, String name, int z, int x, int y, boolean peerRequest, RequestTimings timings) {
         final TileSource tileSource = config.getTileSources().get(name);
 
         if (tileSource == null) {
@@ -74,6 +182,11 @@ public class TMSHandler implements Handler<RoutingContext> {
             return Future.failedFuture("Invalid zoom.");
         }
 
+        // peers are limited on the node the client is connected to
+        if (!peerRequest && !acquireRateLimit(ctx, requestRateLimiter, name)) {
+            return Future.failedFuture("Request rate limit exceeded.");
+        }
+
         final TileCache tileCache;
 
         if (tileSource.getCache() != null) {
@@ -88,37 +201,100 @@ public class TMSHandler implements Handler<RoutingContext> {
         final Promise<Void> requestCompletePromise = Promise.promise();
 
         if (tileCache != null) {
+            timings.begin(Phase.CACHE);
             tileCache.retrieve(name, z, x, y).onComplete(event -> {
+                timings.end(Phase.CACHE);
                 if (event.succeeded() && !event.result().isEmpty()) {
                     ctx.response().putHeader("Content-Type", "image/" + event.result().extension());
+                    putServerTimingHeader(ctx.response(), timings);
+                    timings.begin(Phase.WRITE);
+                    final Future<Void> written;
                     if (event.result().fileContents() != null) {
-                        ctx.response().end(event.result().fileContents()).onComplete(__ -> requestCompletePromise.complete());
+                        written = ctx.response().end(event.result().fileContents());
                     } else {
-                        ctx.response().sendFile(event.result().filePath()).onComplete(__ -> requestCompletePromise.complete());
+                        written = ctx.response().sendFile(event.result().filePath());
                     }
+                    written.onComplete(__ -> {
+                        timings.end(Phase.WRITE);
+                        requestCompletePromise.complete();
+                    });
                 } else {
-                    requestAndCache(ctx, name, z, x, y, tileSource, tileCache, requestCompletePromise);
+                    requestMissingTile(ctx, name, z, x, y, tileSource, tileCache, peerRequest, timings, requestCompletePromise);
                 }
             });
         } else {
-            requestAndCache(ctx, name, z, x, y, tileSource, null, requestCompletePromise);
+            requestMissingTile(ctx, name, z, x, y, tileSource, null, peerRequest, timings, requestCompletePromise);
         }
 
         return requestCompletePromise.future();
     }
 
-    private void requestAndCache(RoutingContext ctx, String name, int z, int x, int y, TileSource tileSource, TileCache tileCache, Promise<Void> requestCompletePromise) {
+    /**
+     * Get a tile which is not in the local cache from the owner peer or the upstream server.
+     */
+    private void requestMissingTile(RoutingContext ctx, String name, int z, int x, int y, TileSource tileSource, TileCache tileCache, boolean peerRequest, RequestTimings timings, Promise<Void> requestCompletePromise) {
+        if (!peerRequest && !acquireRateLimit(ctx, missRateLimiter, name)) {
+            requestCompletePromise.fail("Cache miss rate limit exceeded.");
+            return;
+        }
+
+        if (peerClient != null && tileCache != null && !peerRequest) {
+            requestFromOwner(ctx, name, z, x, y, tileSource, tileCache, timings, requestCompletePromise);
+        } else {
+            requestAndCache(ctx, name, z, x, y, tileSource, tileCache, timings, requestCompletePromise);
+        }
+    }
+
+    /**
+     * Take a token for the client and tile source, responds with 429 if none is available.
+     * @return true if the request may proceed, false if the response has been sent.
+     */
+    private boolean acquireRateLimit(RoutingContext ctx, TokenBucketRateLimiter rateLimiter, String tileSourceName) {
+        if (rateLimiter == null) {
+            return true;
+        }
+
+        final long retryAfterNanos = rateLimiter.tryAcquire(getClientKey(ctx) + "|" + tileSourceName);
+        if (retryAfterNanos == 0) {
+            return true;
+        }
+
+        final long retryAfterSeconds = Math.max(1, (retryAfterNanos + 999_999_999L) / 1_000_000_000L);
+        ctx.response()
+                .setStatusCode(429)
+                .putHeader("Retry-After", String.valueOf(retryAfterSeconds))
+                .end();
+        return false;
+    }
+
+    private String getClientKey(RoutingContext ctx) {
+        final RateLimitConfig rateLimit = config.getRateLimit();
+        final String headerValue = rateLimit.getClientKeyHeader() == null ? null : ctx.request().getHeader(rateLimit.getClientKeyHeader());
+        return ClientKeys.clientKey(headerValue, ctx.request().remoteAddress().host(), rateLimit.getApiKeys());
+    }
+
+    private void requestAndCache(RoutingContext ctx, String name, int z, int x, int y, TileSource tileSource, TileCache tileCache, RequestTimings timings, Promise<Void> requestCompletePromise) {
         final HttpServerResponse response = ctx.response();
         final String url = tileSource.buildUrl(z, x, y);
 
+        timings.begin(Phase.CONNECT);
         httpClient.request(new RequestOptions().setMethod(HttpMethod.GET).setAbsoluteURI(url))
-                .compose(HttpClientRequest::send)
+                .compose(upstreamRequest -> {
+                    timings.end(Phase.CONNECT);
+                    timings.begin(Phase.TTFB);
+                    return upstreamRequest.send();
+                })
                 .onSuccess(upstreamResponse -> {
+                    timings.end(Phase.TTFB);
                     final String contentType = upstreamResponse.getHeader("Content-Type");
 
                     if (upstreamResponse.statusCode() < 200 || upstreamResponse.statusCode() > 299) {
                         if (upstreamResponse.statusCode() == 404) {
                             // will probably be a common "error", handle with next route or 404
+                            if (ctx.request().path().startsWith(PEER_PATH_PREFIX + "/")) {
+                                // tell the asking peer not to try the upstream server itself
+                                response.putHeader(UPSTREAM_NOT_FOUND_HEADER, "true");
+                            }
                             ctx.next();
                             requestCompletePromise.fail("Resource not found by upstream server.");
                             return;
@@ -138,27 +314,169 @@ public class TMSHandler implements Handler<RoutingContext> {
                         return;
                     }
 
+                    timings.begin(Phase.BODY);
                     upstreamResponse.body().onSuccess(file -> {
+                        timings.end(Phase.BODY);
+                        final Future<Void> stored;
                         if (tileCache != null) {
-                            tileCache.store(name, z, x, y, file, contentType.split("/", 2)[1]);
+                            stored = storeTile(tileCache, name, z, x, y, file, contentType, timings);
+                        } else {
+                            stored = Future.succeededFuture();
                         }
-                        response.setStatusCode(upstreamResponse.statusCode());
-                        response.putHeader("Content-Type", contentType);
-                        response.putHeader("Content-Length", upstreamResponse.getHeader("Content-Length"));
-                        response.end(file);
-                        requestCompletePromise.complete();
+                        sendTile(response, upstreamResponse.statusCode(), contentType, file, stored, timings, requestCompletePromise);
                     }).onFailure(t -> {
+                        timings.end(Phase.BODY);
                         closeResponseUpstreamError(response);
                         requestCompletePromise.fail("Error sending response body.");
                     });
                 })
                 .onFailure(t -> {
+                    // only the phase which was active when the error occurred has been started
+                    timings.end(Phase.CONNECT);
+                    timings.end(Phase.TTFB);
                     log.error("Error forwarding request to upstream server.", t);
                     closeResponseUpstreamError(response);
                     requestCompletePromise.fail("Error forwarding request to upstream server.");
                 });
     }
 
+    /**
+     * Request a tile from the cluster peer owning it, the owner fetches and caches it if necessary.
+     * Falls back to the upstream server if this node is the owner or the owner is unavailable.
+     */
+    private void requestFromOwner(RoutingContext ctx, String name, int z, int x, int y, TileSource tileSource, TileCache tileCache, RequestTimings timings, Promise<Void> requestCompletePromise) {
+        final String owner = peerHash.getOwner(TileKeys.hash(name, z, x, y));
+
+        if (owner.equals(config.getCluster().getSelf()) || isPeerDown(owner)) {
+            requestAndCache(ctx, name, z, x, y, tileSource, tileCache, timings, requestCompletePromise);
+            return;
+        }
+
+        final String url = owner + PEER_PATH_PREFIX + "/tms/" + name + "/" + z + "/" + x + "/" + y;
+
+        final RequestOptions requestOptions = new RequestOptions()
+                .setMethod(HttpMethod.GET)
+                .setAbsoluteURI(url)
+                .putHeader(PEER_SECRET_HEADER, config.getCluster().getSecret())
+                .setConnectTimeout(config.getCluster().getPeerTimeout().toMillis())
+                .setIdleTimeout(config.getCluster().getPeerResponseTimeout().toMillis());
+
+        timings.begin(Phase.PEER);
+        peerClient.request(requestOptions)
+                .onFailure(t -> {
+                    // the peer could not be connected to, skip it for a while
+                    timings.end(Phase.PEER);
+                    markPeerDown(owner, t);
+                    requestAndCache(ctx, name, z, x, y, tileSource, tileCache, timings, requestCompletePromise);
+                })
+                .onSuccess(peerRequest -> peerRequest.send().onSuccess(peerResponse -> {
+                    final String contentType = peerResponse.getHeader("Content-Type");
+
+                    if (peerResponse.statusCode() == 404 && "true".equals(peerResponse.getHeader(UPSTREAM_NOT_FOUND_HEADER))) {
+                        // the owner already asked the upstream server
+                        timings.end(Phase.PEER);
+                        ctx.next();
+                        requestCompletePromise.fail("Resource not found by owner peer.");
+                        return;
+                    }
+                    if (peerResponse.statusCode() != 200 || contentType == null || !contentType.startsWith("image/")) {
+                        timings.end(Phase.PEER);
+                        log.warn("Peer '{}' responded with status code '{}' for '{}', falling back to upstream server.", owner, peerResponse.statusCode(), url);
+                        requestAndCache(ctx, name, z, x, y, tileSource, tileCache, timings, requestCompletePromise);
+                        return;
+                    }
+
+                    peerResponse.body().onSuccess(file -> {
+                        timings.end(Phase.PEER);
+                        final Future<Void> stored = storeTile(tileCache, name, z, x, y, file, contentType, timings);
+                        sendTile(ctx.response(), 200, contentType, file, stored, timings, requestCompletePromise);
+                    }).onFailure(t -> peerResponseFailed(ctx, name, z, x, y, tileSource, tileCache, owner, t, timings, requestCompletePromise));
+                }).onFailure(t -> peerResponseFailed(ctx, name, z, x, y, tileSource, tileCache, owner, t, timings, requestCompletePromise)));
+    }
+
+    /**
+     * Fall back to the upstream server after a connected peer failed to respond in time.
+     * The peer is not marked as down, it might just be waiting on a slow upstream server.
+     */
+    private void peerResponseFailed(RoutingContext ctx, String name, int z, int x, int y, TileSource tileSource, TileCache tileCache, String owner, Throwable cause, RequestTimings timings, Promise<Void> requestCompletePromise) {
+        timings.end(Phase.PEER);
+        log.warn("Error receiving tile from peer '{}', falling back to upstream server: {}", owner, cause.getMessage());
+        requestAndCache(ctx, name, z, x, y, tileSource, tileCache, timings, requestCompletePromise);
+    }
+
+    /**
+     * Check if a request on the peer route has been sent by a cluster peer.
+     */
+    private boolean isAuthenticatedPeer(RoutingContext ctx) {
+        if (peerClient == null) {
+            return false;
+        }
+
+        final String secret = ctx.request().getHeader(PEER_SECRET_HEADER);
+        return secret != null && MessageDigest.isEqual(
+                secret.getBytes(StandardCharsets.UTF_8),
+                config.getCluster().getSecret().getBytes(StandardCharsets.UTF_8)
+        );
+    }
+
+    private boolean isPeerDown(String peer) {
+        final Long downUntil = peersDownUntil.get(peer);
+        if (downUntil == null) {
+            return false;
+        }
+        if (System.nanoTime() - downUntil < 0) {
+            return true;
+        }
+        peersDownUntil.remove(peer, downUntil);
+        return false;
+    }
+
+    private void markPeerDown(String peer, Throwable cause) {
+        log.warn("Error requesting tile from peer '{}', skipping it for {}: {}", peer, config.getCluster().getPeerDownTime(), cause.getMessage());
+        peersDownUntil.put(peer, System.nanoTime() + config.getCluster().getPeerDownTime().toNanos());
+    }
+
+    /**
+     * Store a tile in the cache and record the store phase once the cache has finished writing it.
+     */
+    private Future<Void> storeTile(TileCache tileCache, String name, int z, int x, int y, Buffer file, String contentType, RequestTimings timings) {
+        timings.begin(Phase.STORE);
+        return tileCache.store(name, z, x, y, file, contentType.split("/", 2)[1])
+                .onComplete(__ -> timings.end(Phase.STORE));
+    }
+
+    /**
+     * Send a tile to the client without waiting for it to be stored. The request is only completed
+     * (and logged) after the tile has been stored, so the store phase is part of the slow request log.
+     */
+    private void sendTile(HttpServerResponse response, int statusCode, String contentType, Buffer file, Future<Void> stored, RequestTimings timings, Promise<Void> requestCompletePromise) {
+        response.setStatusCode(statusCode);
+        response.putHeader("Content-Type", contentType);
+        response.putHeader("Content-Length", String.valueOf(file.length()));
+        putServerTimingHeader(response, timings);
+        timings.begin(Phase.WRITE);
+        final Future<Void> written = response.end(file).onComplete(__ -> timings.end(Phase.WRITE));
+        Future.join(written, stored).onComplete(__ -> requestCompletePromise.complete());
+    }
+
+    private void putServerTimingHeader(HttpServerResponse response, RequestTimings timings) {
+        if (config.getTiming().isServerTimingHeader()) {
+            // the write and store phases can't be part of the header as the headers are sent before they finish
+            response.putHeader("Server-Timing", timings.toServerTimingHeader());
+        }
+    }
+
+    private void logSlowRequest(RoutingContext ctx, String name, int z, int x, int y, RequestTimings timings, long totalNanos) {
+        final TimingConfig timingConfig = config.getTiming();
+        if (totalNanos < timingConfig.getSlowRequestThreshold().toNanos()) {
+            return;
+        }
+        if (ThreadLocalRandom.current().nextDouble() >= timingConfig.getSlowRequestSampleRate()) {
+            return;
+        }
+        log.warn("Slow request tile={}/{}/{}/{} status={} {}", name, z, x, y, ctx.response().getStatusCode(), timings.toLogString());
+    }
+
     private void closeResponseUpstreamError(HttpServerResponse response) {
         response.setStatusCode(500).end("Error requesting resource from upstream server.");
     }
@@ -0,0 +1,57 @@
+package com.github.bitfexl.tmsproxy.util;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+
+public final class ClientKeys {
+    private ClientKeys() {}
+
+    /**
+     * Get the key identifying a client for rate limiting.
+     * Client supplied keys are only trusted if they are known, otherwise anyone could get a fresh budget
+     * by sending a new value with every request.
+     * @param headerValue The value of the client key header or null.
+     * @param remoteAddress The ip address the request has been received from.
+     * @param apiKeys The known api keys.
+     * @return The api key if it is known, otherwise the (network of the) remote address.
+     */
+    public static String clientKey(String headerValue, String remoteAddress, Set<String> apiKeys) {
+        if (headerValue != null && apiKeys.contains(headerValue)) {
+            return "key:" + headerValue;
+        }
+        return "ip:" + addressKey(remoteAddress);
+    }
+
+    /**
+     * Group ip addresses which belong to the same client. IPv6 clients usually get a whole /64 network,
+     * so the address is reduced to its /64 prefix. IPv4 addresses are returned unchanged.
+     * @param address The ip address literal.
+     * @return The address or network.
+     */
+    public static String addressKey(String address) {
+        if (address.indexOf(':') < 0) {
+            return address;
+        }
+
+        final InetAddress inetAddress;
+        try {
+            // an ipv6 literal, no name lookup is done
+            inetAddress = InetAddress.getByName(address);
+        } catch (UnknownHostException ex) {
+            return address;
+        }
+        if (!(inetAddress instanceof Inet6Address)) {
+            // ipv4 mapped address
+            return inetAddress.getHostAddress();
+        }
+
+        final byte[] bytes = inetAddress.getAddress();
+        final StringBuilder network = new StringBuilder(24);
+        for (int i = 0; i < 8; i += 2) {
+            network.append(Integer.toHexString(((bytes[i] & 0xff) << 8) | (bytes[i + 1] & 0xff))).append(':');
+        }
+        return network.append(":/64").toString();
+    }
+}
@@ -0,0 +1,57 @@
+package com.github.bitfexl.tmsproxy.util;
+
+import com.github.bitfexl.tmsproxy.data.TileKeys;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Rendezvous (highest random weight) hashing. Every key is owned by the node with the highest score
+ * for that key. Adding or removing a node only moves the keys owned by that node.
+ */
+public class RendezvousHash {
+    private final List<String> nodes;
+
+    private final long[] nodeHashes;
+
+    public RendezvousHash(List<String> nodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("At least one node is required.");
+        }
+
+        this.nodes = List.copyOf(nodes);
+        nodeHashes = new long[this.nodes.size()];
+        for (int i = 0; i < nodeHashes.length; i++) {
+            nodeHashes[i] = fnv1a(this.nodes.get(i));
+        }
+    }
+
+    /**
+     * Get the node owning a key.
+     * @param keyHash The hash of the key.
+     * @return The owner node.
+     */
+    public String getOwner(long keyHash) {
+        int owner = 0;
+        long ownerScore = Long.MIN_VALUE;
+
+        for (int i = 0; i < nodeHashes.length; i++) {
+            final long score = TileKeys.spread(keyHash ^ nodeHashes[i]);
+            if (score > ownerScore) {
+                ownerScore = score;
+                owner = i;
+            }
+        }
+
+        return nodes.get(owner);
+    }
+
+    private static long fnv1a(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
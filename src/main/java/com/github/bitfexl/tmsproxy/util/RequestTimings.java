@@ -0,0 +1,134 @@
+package com.github.bitfexl.tmsproxy.util;
+
+/**
+ * Nanosecond precision timings of the phases of a single tile request.
+ * Only two fixed size arrays are allocated per request, recording a phase does not allocate.
+ * Not thread safe, a request is handled on a single event loop.
+ */
+public class RequestTimings {
+    public enum Phase {
+        CACHE("cache"),
+        PEER("peer"),
+        CONNECT("connect"),
+        TTFB("ttfb"),
+        BODY("body"),
+        STORE("store"),
+        WRITE("write");
+
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long requestStart = System.nanoTime();
+
+    private final long[] phaseStarts = new long[PHASES.length];
+
+    private final long[] phaseDurations = new long[PHASES.length];
+
+    /**
+     * Start timing a phase.
+     * @param phase The phase to start.
+     */
+    public void begin(Phase phase) {
+        phaseStarts[phase.ordinal()] = System.nanoTime();
+    }
+
+    /**
+     * Stop timing a phase which has been started with {@link #begin(Phase)}.
+     * Ending a phase multiple times adds up the durations.
+     * @param phase The phase to end.
+     */
+    public void end(Phase phase) {
+        final int i = phase.ordinal();
+        if (phaseStarts[i] != 0) {
+            phaseDurations[i] += System.nanoTime() - phaseStarts[i];
+            phaseStarts[i] = 0;
+        }
+    }
+
+    /**
+     * Get the duration of a phase.
+     * @param phase The phase.
+     * @return The duration in nanoseconds or 0 if the phase has not been recorded.
+     */
+    public long getNanos(Phase phase) {
+        return phaseDurations[phase.ordinal()];
+    }
+
+    /**
+     * Get the time since the request has been received.
+     * @return The elapsed time in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return System.nanoTime() - requestStart;
+    }
+
+    /**
+     * Build the value of a Server-Timing header (https://www.w3.org/TR/server-timing/)
+     * containing all phases recorded so far and the total time.
+     * @return The header value, durations are in milliseconds.
+     */
+    public String toServerTimingHeader() {
+        final StringBuilder header = new StringBuilder(128);
+
+        for (Phase phase : PHASES) {
+            final long nanos = phaseDurations[phase.ordinal()];
+            if (nanos != 0) {
+                appendMetric(header, phase.getMetricName(), nanos);
+            }
+        }
+        appendMetric(header, "total", getTotalNanos());
+
+        return header.toString();
+    }
+
+    /**
+     * Build a structured key=value representation of all phases for logging.
+     * @return The phases and total time in milliseconds.
+     */
+    public String toLogString() {
+        final StringBuilder log = new StringBuilder(128);
+
+        log.append("totalMs=");
+        appendMillis(log, getTotalNanos());
+        for (Phase phase : PHASES) {
+            log.append(' ').append(phase.getMetricName()).append("Ms=");
+            appendMillis(log, phaseDurations[phase.ordinal()]);
+        }
+
+        return log.toString();
+    }
+
+    private static void appendMetric(StringBuilder header, String name, long nanos) {
+        if (!header.isEmpty()) {
+            header.append(", ");
+        }
+        header.append(name).append(";dur=");
+        appendMillis(header, nanos);
+    }
+
+    /**
+     * Append nanoseconds as milliseconds with three decimal places without going through String.format.
+     */
+    private static void appendMillis(StringBuilder sb, long nanos) {
+        final long micros = nanos / 1_000;
+        sb.append(micros / 1_000).append('.');
+        final long fraction = micros % 1_000;
+        if (fraction < 100) {
+            sb.append('0');
+        }
+        if (fraction < 10) {
+            sb.append('0');
+        }
+        sb.append(fraction);
+    }
+}
@@ -0,0 +1,97 @@
+package com.github.bitfexl.tmsproxy.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock free token bucket rate limiter with one bucket per key.
+ * Implemented as generic cell rate algorithm: each bucket is a single AtomicLong holding the theoretical arrival time,
+ * updated with compare and set. The map of buckets is a ConcurrentHashMap which is striped internally,
+ * so event loops never wait on each other.
+ * A bucket whose arrival time has passed is full (the key has been idle long enough to refill it),
+ * it behaves exactly like a missing bucket and is evicted by a sweep at most once per second.
+ * Keys which don't fit into the limit share a single overflow bucket. Keys must not be chosen freely by clients
+ * (see {@link ClientKeys}), as every new key starts with a full bucket.
+ */
+public class TokenBucketRateLimiter {
+    private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L;
+
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * Time to refill one token.
+     */
+    private final long emissionIntervalNanos;
+
+    /**
+     * Time to refill the whole bucket.
+     */
+    private final long toleranceNanos;
+
+    private final int maxKeys;
+
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    /**
+     * Bucket shared by all keys which could not be tracked because the limit has been reached.
+     */
+    private final AtomicLong overflowBucket = new AtomicLong(System.nanoTime());
+
+    /**
+     * Create a new rate limiter.
+     * @param tokensPerSecond The rate at which tokens are refilled.
+     * @param burst The capacity of a bucket.
+     * @param maxKeys The maximum number of buckets, further keys share one overflow bucket.
+     */
+    public TokenBucketRateLimiter(double tokensPerSecond, int burst, int maxKeys) {
+        emissionIntervalNanos = (long) (1_000_000_000L / tokensPerSecond);
+        toleranceNanos = emissionIntervalNanos * burst;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Try to take a token from the bucket of a key.
+     * @param key The key to rate limit.
+     * @return 0 if a token has been taken, otherwise the nanoseconds until the next token is available.
+     */
+    public long tryAcquire(String key) {
+        final long now = System.nanoTime();
+
+        sweep(now);
+
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys) {
+                bucket = overflowBucket;
+            } else {
+                final AtomicLong newBucket = new AtomicLong(now);
+                bucket = buckets.putIfAbsent(key, newBucket);
+                if (bucket == null) {
+                    bucket = newBucket;
+                }
+            }
+        }
+
+        while (true) {
+            final long arrivalTime = bucket.get();
+            final long newArrivalTime = Math.max(arrivalTime - now, 0) + now + emissionIntervalNanos;
+            final long wait = newArrivalTime - now - toleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (bucket.compareAndSet(arrivalTime, newArrivalTime)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Remove all full buckets, at most once per sweep interval.
+     */
+    private void sweep(long now) {
+        final long last = lastSweep.get();
+        if (now - last >= SWEEP_INTERVAL_NANOS && lastSweep.compareAndSet(last, now)) {
+            buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.github.bitfexl.tmsproxy.data;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionTileCacheTest {
+    private static class CountingTileCache implements TileCache {
+        int stores;
+
+        @Override
+        public Future<Void> store(String tileSetName, int z, int x, int y, Buffer file, String extension) {
+            stores++;
+            return Future.succeededFuture();
+        }
+
+        @Override
+        public Future<TileCacheResult> retrieve(String tileSetName, int z, int x, int y) {
+            return Future.succeededFuture(TileCacheResult.EMPTY);
+        }
+    }
+
+    private static void requestAndStore(TileCache tileCache) {
+        tileCache.retrieve("osm", 10, 500, 300);
+        tileCache.store("osm", 10, 500, 300, Buffer.buffer("tile"), "png");
+    }
+
+    @Test
+    void admitsTileOnceSeenMoreThanThreshold() {
+        final CountingTileCache backingCache = new CountingTileCache();
+        final AdmissionTileCache tileCache = new AdmissionTileCache(backingCache, true, 1, 1024);
+
+        requestAndStore(tileCache);
+        assertEquals(0, backingCache.stores);
+
+        requestAndStore(tileCache);
+        assertEquals(1, backingCache.stores);
+
+        final AdmissionTileCache.Stats stats = tileCache.getStats();
+        assertEquals(1, stats.admitted());
+        assertEquals(1, stats.rejected());
+        assertEquals(2, stats.misses());
+        assertEquals(0, stats.hits());
+    }
+
+    @Test
+    void admitsEverythingWhenDisabled() {
+        final CountingTileCache backingCache = new CountingTileCache();
+        final AdmissionTileCache tileCache = new AdmissionTileCache(backingCache, false, 1, 1024);
+
+        requestAndStore(tileCache);
+
+        assertEquals(1, backingCache.stores);
+        assertEquals(1, tileCache.getStats().admitted());
+        assertEquals(0, tileCache.getStats().rejected());
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.bitfexl.tmsproxy.data;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrequencySketchTest {
+    private static final long TILE = TileKeys.hash("osm", 10, 500, 300);
+    private static final long OTHER_TILE = TileKeys.hash("osm", 10, 501, 300);
+
+    @Test
+    void countsIncrementsPerKey() {
+        final FrequencySketch sketch = new FrequencySketch(1024);
+
+        for (int i = 0; i < 3; i++) {
+            sketch.increment(TILE);
+        }
+
+        assertEquals(3, sketch.frequency(TILE));
+        assertEquals(0, sketch.frequency(OTHER_TILE));
+        assertEquals(3, sketch.size());
+    }
+
+    @Test
+    void countsSaturateAt15() {
+        final FrequencySketch sketch = new FrequencySketch(1024);
+
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(TILE);
+        }
+
+        assertEquals(15, sketch.frequency(TILE));
+        // increments of saturated counters don't count towards the sample
+        assertEquals(15, sketch.size());
+    }
+
+    @Test
+    void resetHalvesEvenCounts() {
+        final FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 10; i++) {
+            sketch.increment(TILE);
+        }
+
+        sketch.reset();
+
+        assertEquals(5, sketch.frequency(TILE));
+        assertEquals(5, sketch.size());
+    }
+
+    @Test
+    void resetRoundsOddCountsDownAndCorrectsSize() {
+        final FrequencySketch sketch = new FrequencySketch(1024);
+        for (int i = 0; i < 11; i++) {
+            sketch.increment(TILE);
+        }
+
+        sketch.reset();
+
+        assertEquals(5, sketch.frequency(TILE));
+        // four odd counters lose one increment: (11 - 1) / 2
+        assertEquals(5, sketch.size());
+    }
+
+    @Test
+    void agesOnceSampleSizeIsReached() {
+        final FrequencySketch sketch = new FrequencySketch(16);
+        for (int i = 0; i < 15; i++) {
+            sketch.increment(TILE);
+        }
+
+        boolean aged = false;
+        for (int x = 0; x < 100 * sketch.sampleSize() && !aged; x++) {
+            final int sizeBefore = sketch.size();
+            sketch.increment(TileKeys.hash("crawl", 18, x, 0));
+            aged = sketch.size() < sizeBefore;
+        }
+
+        assertTrue(aged);
+        assertEquals(7, sketch.frequency(TILE));
+    }
+}
@@ -0,0 +1,32 @@
+package com.github.bitfexl.tmsproxy.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientKeysTest {
+    @Test
+    void usesKnownApiKey() {
+        assertEquals("key:secret", ClientKeys.clientKey("secret", "203.0.113.7", Set.of("secret")));
+    }
+
+    @Test
+    void ignoresUnknownApiKey() {
+        assertEquals("ip:203.0.113.7", ClientKeys.clientKey("guessed", "203.0.113.7", Set.of("secret")));
+        assertEquals("ip:203.0.113.7", ClientKeys.clientKey(null, "203.0.113.7", Set.of("secret")));
+    }
+
+    @Test
+    void groupsIpv6ByNetwork() {
+        assertEquals("2001:db8:1:2::/64", ClientKeys.addressKey("2001:db8:1:2:aaaa:bbbb:cccc:dddd"));
+        assertEquals("2001:db8:1:2::/64", ClientKeys.addressKey("2001:db8:1:2::1"));
+        assertNotEquals(ClientKeys.addressKey("2001:db8:1:2::1"), ClientKeys.addressKey("2001:db8:1:3::1"));
+    }
+
+    @Test
+    void keepsIpv4Address() {
+        assertEquals("203.0.113.7", ClientKeys.addressKey("203.0.113.7"));
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.bitfexl.tmsproxy.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketRateLimiterTest {
+    @Test
+    void allowsBurstThenLimits() {
+        final TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(1, 3, 100);
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, rateLimiter.tryAcquire("client"));
+        }
+
+        final long wait = rateLimiter.tryAcquire("client");
+        assertTrue(wait > 0);
+        // at a rate of one token per second the next one is available within a second
+        assertTrue(wait <= 1_000_000_000L);
+    }
+
+    @Test
+    void keysHaveSeparateBuckets() {
+        final TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(1, 1, 100);
+
+        assertEquals(0, rateLimiter.tryAcquire("a"));
+        assertTrue(rateLimiter.tryAcquire("a") > 0);
+        assertEquals(0, rateLimiter.tryAcquire("b"));
+    }
+
+    @Test
+    void keysBeyondLimitShareOverflowBucket() {
+        final TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(1, 1, 2);
+        assertEquals(0, rateLimiter.tryAcquire("a"));
+        assertEquals(0, rateLimiter.tryAcquire("b"));
+
+        assertEquals(0, rateLimiter.tryAcquire("c"));
+        assertTrue(rateLimiter.tryAcquire("d") > 0);
+    }
+
+    @Test
+    void rotatingUnknownClientKeysDoesNotBypassLimit() {
+        final TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(0.01, 5, 100_000);
+        final Set<String> apiKeys = Set.of("known-key");
+
+        int allowed = 0;
+        for (int i = 0; i < 1000; i++) {
+            final String key = ClientKeys.clientKey("rotated-" + i, "203.0.113.7", apiKeys);
+            if (rateLimiter.tryAcquire(key) == 0) {
+                allowed++;
+            }
+        }
+
+        assertEquals(5, allowed);
+    }
+
+    @Test
+    void rotatingIpv6AddressesWithinNetworkDoesNotBypassLimit() {
+        final TokenBucketRateLimiter rateLimiter = new TokenBucketRateLimiter(0.01, 5, 100_000);
+
+        int allowed = 0;
+        for (int i = 0; i < 1000; i++) {
+            final String address = "2001:db8:1:2::" + Integer.toHexString(i + 1);
+            if (rateLimiter.tryAcquire(ClientKeys.clientKey(null, address, Set.of())) == 0) {
+                allowed++;
+            }
+        }
+
+        assertEquals(5, allowed);
+    }
+}